@@ -2,10 +2,20 @@
 
         String errMsg = "Se ha producido un error procesando el fichero de respuesta";
         boolean retraying = false;
+
+        // Métricas por etapa
+        StageTimer stageTimer = new StageTimer(ProcessingStage.DECRYPT);
+        String metricsType = UNKNOWN_RESPONSE_TYPE;
+        Outcome outcome = Outcome.ERROR;
+
+        // Traza por fichero; los logs de cada paso solo salen a INFO en los ficheros muestreados
+        boolean verbose = isStepLogSampled();
+        String traceTrId = null;
+        RetryKind branch = null;
         try {
             // Descifra el contenido del archivo
             errMsg = "Error decrypting file";
-            log.info("Decrypting file");
+            logStep(verbose, "Decrypting file");
             String decryptedContent = "";
             try{
                 decryptedContent = decryptFile(file);
@@ -14,34 +24,38 @@
                 logErrAndException(FILE_DECRYPTED_ERROR, FILE_DECRYPTED_ERROR, e, true);
             }
 
+            // contains() previo: en Java 8 replace() compila un Pattern en cada llamada aunque no haya coincidencias
             if (decryptedContent.contains("datetime")) {
                 decryptedContent = decryptedContent.replace("datetime", "dateTime");
             }
 
+            stageTimer.next(ProcessingStage.UNMARSHAL);
+
             Reader baseReader = new StringReader(decryptedContent);
             String transactionId = UuidUtils.generateRandomUUID();
             String dateCodeName = "_" + System.currentTimeMillis();
 
             // Obtiene el tipo de respuesta base
             errMsg = "Error unmarshalling XML content";
-            log.info("Unmarshalling XML content");
-            SondaGenericXmlResponse baseResponse = (SondaGenericXmlResponse) getGenericXmlUnmarshaller().unmarshal(baseReader);
-            log.info("{} Response '{}' -> {}", transactionId, file.getName(), baseResponse);
+            logStep(verbose, "Unmarshalling XML content");
+            SondaGenericXmlResponse baseResponse = (SondaGenericXmlResponse) getThreadUnmarshaller(UNMARSHALLER_GENERIC).unmarshal(baseReader);
+            logStep(verbose, "{} Response '{}' -> {}", transactionId, file.getName(), baseResponse);
 
             // Obtiene el trId del archivo
             errMsg = "Error al obtener trId del archivo";
-            log.info("Obteniendo trId del archivo");
+            logStep(verbose, "Obteniendo trId del archivo");
             String trIdAux = baseResponse.getTrId();
 
             // Verifica el atributo obligatorio 'type'
             errMsg = "Error al verificar el atributo obligatorio 'type'";
-            log.info("Verificando el atributo obligatorio 'type'");
+            logStep(verbose, "Verificando el atributo obligatorio 'type'");
             if (baseResponse.getType() != null) {
 
                 // -- trId -- //
                 try {
                     errMsg = "Error obteniendo el trId del fichero";
-                    if(extractTrIdFromFile(decryptedContent) == null || "".equals(extractTrIdFromFile(decryptedContent))){
+                    String trIdFromFile = extractTrIdFromFile(decryptedContent);
+                    if(trIdFromFile == null || "".equals(trIdFromFile)){
                         String idFromName = extractTrid(file.getName());
                         decryptedContent = replaceTrId(decryptedContent, idFromName);
                     }
@@ -57,14 +71,15 @@
 
                 SondaResult result = null;
 
-                // Verificar el tipo de respuesta y procesarla
-                log.info("Verificando el tipo de respuesta...");
+                // Verificar el tipo de respuesta y procesarla (el tipo ya viene de la cabecera genérica)
+                logStep(verbose, "Verificando el tipo de respuesta...");
                 errMsg = "Error al procesar la respuesta según su tipo";
-                if (decryptedContent.contains("type=\"ulr\"")) {
+                String responseType = baseResponse.getType();
+                if ("ulr".equals(responseType)) {
                     // Marshaller específico para Ulr
-                    log.info("Getting Ulr Specific Marshaller");
-                    responseUnmarshaller = getResponseXmlUnmarshallerUlr();
-                    ITransformer<SondaXmlUlrResponse, SondaResult> transformer = new SondaXmlUlrResponseTransformer();
+                    logStep(verbose, "Getting Ulr Specific Marshaller");
+                    Unmarshaller responseUnmarshaller = getThreadUnmarshaller(UNMARSHALLER_ULR);
+                    ITransformer<SondaXmlUlrResponse, SondaResult> transformer = ULR_TRANSFORMER;
 
                     // Transformador específico para Ulr
 /*                    String respExecState = decryptedContent.split("<status value=\"")[1].split("\" description")[0];
@@ -76,7 +91,7 @@
                         result = transformer.transform((SondaXmlUlrResponse) responseUnmarshaller.unmarshal(specificReader));
                         try{
                             if(result.getImsi() != null && !"".equals(result.getImsi())){
-                                MccMnc mccMncAuxUlr = operatorService.getMccMncFromImsi(result.getImsi());
+                                MccMnc mccMncAuxUlr = getCachedMccMncFromImsi(result.getImsi());
                                 result.setMcc(mccMncAuxUlr.getMcc());
                                 result.setMnc(mccMncAuxUlr.getMnc());
                             }
@@ -89,20 +104,19 @@
                     }
 
                 }
-                else if (decryptedContent.contains("type=\"idr\"")) {
+                else if ("idr".equals(responseType)) {
                     // Marshaller específico para Idr
-                    log.info("Getting Idr Specific Marshaller");
-                    responseUnmarshaller = getResponseXmlUnmarshallerIdr();
-                    ITransformer<SondaXmlIdrResponse, SondaResult> transformer = new SondaXmlIdrResponseTransformer();
+                    logStep(verbose, "Getting Idr Specific Marshaller");
+                    Unmarshaller responseUnmarshaller = getThreadUnmarshaller(UNMARSHALLER_IDR);
+                    ITransformer<SondaXmlIdrResponse, SondaResult> transformer = IDR_TRANSFORMER;
 
                     // Transformador específico para Idr
                     try {
                         boolean respNodoPromote = decryptedContent.contains("promote");
                         if (!respNodoPromote) {
-                            String respExecState = "";
-                            try{
-                                respExecState = decryptedContent.split("<status value=\"")[1].split("\" description")[0];
-                            }catch (Exception e){
+                            String respExecState = extractStatusValue(decryptedContent);
+                            if (respExecState == null) {
+                                respExecState = "";
                                 log.error("Etiqueta <status> no encontrada en el archivo, no se puede procesar el fichero correctamente");
                             }
                             if (!(respExecState.equalsIgnoreCase("OK") || respExecState.equalsIgnoreCase("ERROR")|| respExecState.equalsIgnoreCase("KO"))) {
@@ -126,8 +140,8 @@
                     errMsg = "Error getting operator from MccMnc";
                     List<Operator> operadora = new ArrayList<>();
                     try {
-                        log.info("Getting operator from MccMnc");
-                        operadora = operatorService.getOperatorByMcc_Mnc(result.getMcc(), result.getMnc());
+                        logStep(verbose, "Getting operator from MccMnc");
+                        operadora = getCachedOperatorByMccMnc(result.getMcc(), result.getMnc());
                     } catch (Exception e) {
                         errMsg = OPERATOR_FROM_MCCMNC_ERROR;
                         logErrAndException(OPERATOR_FROM_MCCMNC_ERROR, OPERATOR_FROM_MCCMNC_ERROR, e, true);
@@ -139,9 +153,9 @@
                 }
                 else {
                     // Marshaller específico para otros tipos de respuesta
-                    log.info("Getting Specific Marshaller");
-                    responseUnmarshaller = getResponseXmlUnmarshaller();
-                    ITransformer<SondaXmlResponse, SondaResult> transformer = XmlResponseTransformerFactory.getTransformer(baseResponse.getType());
+                    logStep(verbose, "Getting Specific Marshaller");
+                    Unmarshaller responseUnmarshaller = getThreadUnmarshaller(UNMARSHALLER_DEFAULT);
+                    ITransformer<SondaXmlResponse, SondaResult> transformer = XmlResponseTransformerFactory.getTransformer(responseType);
 
                     // Transformador específico para otros tipos de respuesta
                     //String respExecState = decryptedContent.split("<execState>")[1].split("</execState>")[0];
@@ -158,12 +172,17 @@
                     }
                 }
 
+                stageTimer.next(ProcessingStage.LOOKUP);
+                if (result != null && result.getType() != null) {
+                    metricsType = result.getType();
+                }
+
                 // Buscando trId en BBDD
                 errMsg = "Error al buscar trId en la base de datos";
                 log.debug("{} findOneByID [{}]", transactionId, result.getRequestId().getId());
                 SondaRequest sondaRequest = null;
                 try {
-                    log.info("Buscando Request en BD para trId: {}", trIdAux);
+                    logStep(verbose, "Buscando Request en BD para trId: {}", trIdAux);
                     if(result.getDetail().contains(PROCESSING_ERROR)){
                         log.error(result.getDetail());
                         if(trIdAux == null || "".equals(trIdAux)){
@@ -176,19 +195,24 @@
                         }
                     }
                     sondaRequest = sondaRequestRepository.findOneById(result.getRequestId().getId());
-                    if (sondaRequest == null) {
+                    if (sondaRequest == null && !Objects.equals(trIdAux, result.getRequestId().getId())) {
                         sondaRequest = sondaRequestRepository.findOneById(trIdAux);
                     }
                 } catch (Exception e) {
                     errMsg = TRID_DB_ERROR;
                     logErrAndException(TRID_DB_ERROR, TRID_DB_ERROR, e, true);
                 }
+                traceTrId = trIdAux;
 
                 if (sondaRequest == null) {
-                    log.info("{} Request not found for result [{}]", transactionId, result.getRequestId().getId());
+                    log.warn("{} Request not found for result [{}]", transactionId, result.getRequestId().getId());
                     errMsg = TRID_DB_ERROR;
                     logErrAndException(TRID_DB_ERROR, TRID_DB_ERROR, null, true);
                 } else {
+                    stageTimer.next(ProcessingStage.PROCESS);
+
+                    // Contexto de procesamiento: cada consulta auxiliar se hace como mucho una vez por fichero
+                    FileProcessingContext context = new FileProcessingContext(sondaRequest);
 
                     // Check for repeated results
                     errMsg = "Se han encontrado resultados repetidos";
@@ -200,13 +224,17 @@
                     mccMnc.setMnc(result.getMnc());
                     mccMnc.setMcc(result.getMcc());
 
-                    // Check rules
+                    // Check rules (el tiempo previo cuenta como procesamiento, no como reglas)
+                    stageTimer.next(ProcessingStage.RULES);
                     errMsg = "Error al verificar las reglas";
                     try {
                         procesarReglasService.checkReglas(result, sondaRequest);
                     } catch (Exception e) {
-                        log.error("Ocurrió un error al verificar las reglas: {}", e.getCause().toString());
+                        // getCause() puede ser null: se registra la excepción completa sin interrumpir el fichero
+                        ruleEvaluationErrors.increment();
+                        log.error("Ocurrió un error al verificar las reglas para la petición {}", sondaRequest.getId(), e);
                     }
+                    stageTimer.next(ProcessingStage.PROCESS);
 
                     boolean isReintento = false;
 
@@ -217,20 +245,20 @@
                         tecnologia = getTecnologia(result, sondaRequest, file, targetPath, mccMnc);
                     }
 
-                    log.info("Processing file, type:{}", result.getType());
+                    logStep(verbose, "Processing file, type:{}", result.getType());
                     errMsg = "Error processing response";
 
                     //SRIFSM
                     if (SRIFSM.equals(result.getType())) {
                         errMsg = "Error processing SRIFSM";
-                        log.info("Processing SRIFSM result");
+                        logStep(verbose, "Processing SRIFSM result");
 
                         if (STATE_0.equals(result.getState())) {
-                            log.info("Processing SRIFSM result with state 0");
+                            logStep(verbose, "Processing SRIFSM result with state 0");
                             procesarPrefijos(result);
 
                             if (!(sondaRequest.getType().equals(SondaRequestEnum.SRIFSM_ONCE.getIdentifier()))) {
-                                log.info("Checking if PSIRes and IDR are OK or if line is in Roaming");
+                                logStep(verbose, "Checking if PSIRes and IDR are OK or if line is in Roaming");
 
                                 boolean psiOk = false;
                                 boolean existPsi = false;
@@ -257,15 +285,18 @@
                                     }
                                 }
 
-                                String ccGtMsc = getInternationalCode(result.getMscgt());
-                                String ccGtMsisdn = getInternationalCode(result.getMsisdn());
+                                // Solo se resuelven los GT si PSI/IDR no confirman la localización
+                                boolean checkRoaming = (!psiOk || !existPsi) || (!idrOk || !existIdr);
+                                String ccGtMsc = checkRoaming ? getCachedInternationalCode(result.getMscgt()) : null;
+                                // El MSISDN es propio de cada abonado: no se cachea
+                                String ccGtMsisdn = ccGtMsc != null ? getInternationalCode(result.getMsisdn()) : null;
 
-                                if (((!psiOk || !existPsi) || (!idrOk || !existIdr)) && (ccGtMsc != null && ccGtMsisdn != null && !ccGtMsc.equals(ccGtMsisdn))) {
-                                    log.info("Line is in Roaming, updating country");
+                                if (checkRoaming && (ccGtMsc != null && ccGtMsisdn != null && !ccGtMsc.equals(ccGtMsisdn))) {
+                                    logStep(verbose, "Line is in Roaming, updating country");
                                     Country country = null;
 
                                     try {
-                                        country = getCountry(result.getMscgt());
+                                        country = getCachedCountry(result.getMscgt());
                                     } catch (Exception e) {
                                         log.error("País no encontrado para GT: {}", result.getVlrgt());
                                     }
@@ -275,17 +306,17 @@
                             }
 
                         } else if (STATE_1.equals(result.getState())) {
-                            log.info("Processing SRIFSM result with state 1");
+                            logStep(verbose, "Processing SRIFSM result with state 1");
                             sondaRequest.setState(-1);
                         }
                     }
                     //PSI o ATI
                     else if (PSI.equals(result.getType()) || ATI.equals(result.getType())) {
                         errMsg = "Error processing PSI or ATI";
-                        log.info("Processing PSI or ATI result");
+                        logStep(verbose, "Processing PSI or ATI result");
 
                         if (STATE_0.equals(result.getState())) {
-                            log.info("Processing result with state 0");
+                            logStep(verbose, "Processing result with state 0");
 
                             result = getCellLocation(result);
                             log.debug("{} Operation [{}] -> OK", transactionId, result.getType());
@@ -295,16 +326,14 @@
                             try {
                                 String imsi = result.getImsi();
                                 String mscGt = result.getMscgt();
-                                MccMnc mccMncAux = operatorService.getMccMncFromImsi(imsi);
                                 if (mscGt.equals("") && result.getMsc_list() != null) {
                                     mscGt = result.getMsc_list().get(result.getMsc_list().size() - 1).getGt();
                                 }
                                 if (imsi != null && mscGt != null) {
-                                    ImsiNodo imsiNodo = new ImsiNodo(imsi, mscGt, null, mccMncAux.getMcc(), mccMncAux.getMnc(), "MSC", LocalDateTime.now());
-                                    imsiNodoService.insertImsiNodo(imsiNodo);
+                                    insertImsiNodoIfChanged(imsi, mscGt, null, "MSC");
                                 }
                             } catch (Exception e) {
-                                log.info("Unable to update IMSI / NODO relation");
+                                log.warn("Unable to update IMSI / NODO relation for IMSI {}: {}", result.getImsi(), e.toString());
                             }
 
                             // Programada
@@ -313,7 +342,7 @@
                             // Set country for PSIReq result
                             Country country = null;
                             try {
-                                country = getCountry(result.getVlrgt());
+                                country = getCachedCountry(result.getVlrgt());
                             } catch (Exception e) {
                                 log.error("País no encontrado para GT: {}", result.getVlrgt());
                             }
@@ -324,16 +353,20 @@
                             }
 
                         } else if (sondaRequest.getState() != -4 && STATE_1.equals(result.getState()) && sondaRequest.getTriggerName() != null) {
-                            log.info("Processing result with state 1");
+                            logStep(verbose, "Processing result with state 1");
 
-                            Boolean existsSRI = sondaResultRepository.existsByRequestId(sondaRequest);
+                            Boolean existsSRI = context.existsResults();
 
                             // Programada
                             if (sondaRequest.getTriggerName() != null && !existsSRI) {
                                 // Delete PSIReq/IDRReq
                                 sondaRequestRepository.deleteById(sondaRequest.getId());
+                                context.markResultsDirty();
                                 // Retry SRIReq
                                 writeSriRequest(sondaRequest, result);
+                                outcome = Outcome.RETRY;
+                                countRetry(RetryKind.SRI);
+                                branch = RetryKind.SRI;
                             }
 
                             sondaRequest.setState(-4);
@@ -344,35 +377,41 @@
                                 if (restrictionsService.isRestricted(resultAux.getMnc(), sondaRequest.getResults().get(0).getMcc(), DIAMETER)) {
                                     sondaRequest.setState(-2);
                                 } else {
-                                    log.info("Retrying with Diameter");
+                                    logStep(verbose, "Retrying with Diameter");
                                     sondaRequest.setType(SondaRequestEnum.IDR.getIdentifier());
                                     writeIdaRequest(result.getRequestId().getId(), resultAux, transactionId);
+                                    outcome = Outcome.RETRY;
+                                    countRetry(RetryKind.IDA);
+                                    branch = RetryKind.IDA;
                                 }
                             } else {
                                 sondaRequest.setState(-2);
                             }
 
                         } else if (sondaRequest.getFallback() && PSI.equals(result.getType())) {
-                            log.info("Fallback condition for PSI");
+                            logStep(verbose, "Fallback condition for PSI");
 
                             sondaRequest.setFallback(false);
                             sondaRequest.setState(-2);
-                            MccMnc mccMncAux = operatorService.getMccMncFromImsi(sondaRequest.getNumber());
+                            MccMnc mccMncAux = getCachedMccMncFromImsi(sondaRequest.getNumber());
                             if (restrictionsService.isRestricted(mccMncAux.getMnc(), mccMncAux.getMcc(), "DIAMETER")) {
                                 sondaRequest.setState(-2);
                             } else {
                                 isReintento = true;
-                                log.info("[FALLBACK] Retrying with DIAMETER");
+                                logStep(verbose, "[FALLBACK] Retrying with DIAMETER");
                                 retraying = true;
-                                RequestFileWriterService requestFileWriterService = new RequestFileWriterService(appConfigService, sondaRequestRepository, mmeService, mscService, hssService, imsiNodoService, sondaResultJPARepository, operatorService, restrictionsService, sondaRequestJPARepository, reqNodoService);
+                                RequestFileWriterService requestFileWriterService = newRequestFileWriterService();
                                 try {
 
-                                    Boolean priorityInConfig = "0".equals(appConfigService.getConfigurationMap().get("allowIgnoreBlackOrWhiteList").getValor());
+                                    Boolean priorityInConfig = configurationSnapshot.get().isPriorityInConfig();
                                     requestFileWriterService.writeIDRReqFallback(transactionId, sondaRequest.getNumber(), sondaRequest.getName(), sondaRequest.getPriority(), priorityInConfig, "0", 0, sondaRequest.getUser(), sondaRequest.getMotivo(), sondaRequest.getComentarios());
+                                    outcome = Outcome.FALLBACK;
+                                    countRetry(RetryKind.FALLBACK_IDR);
+                                    branch = RetryKind.FALLBACK_IDR;
 
                                     // Update bulk query
-                                    if (masivasService.getBulkQueryByReqId(sondaRequest.getId()) != null) {
-                                        BulkQuery query = masivasService.getBulkQueryByReqId(sondaRequest.getId());
+                                    BulkQuery query = context.getBulkQuery();
+                                    if (query != null) {
                                         query.setLastupdated(LocalDateTime.now());
                                         query.setType("IDR");
                                         query.setReqTransactionId(transactionId);
@@ -380,50 +419,56 @@
                                         masivasService.insertOrUpdateProgramming(query);
                                     }
                                 } catch (IOException | JAXBException | CryptoException e) {
-                                    log.error("Error while writing the PSI fallback request to imsi {}", result.getImsi(), e.getCause());
+                                    log.error("Error while writing the IDR fallback request to imsi {}", result.getImsi(), e);
                                     isReintento = false;
-                                    e.printStackTrace();
                                 }
                             }
 
                         } else {
-                            log.info("Result with unknown state, setting sondaRequest state to -2");
+                            logStep(verbose, "Result with unknown state, setting sondaRequest state to -2");
                             sondaRequest.setState(-2);
                         }
                     }
                     //IDR
                     else if (IDR.equals(result.getType())) {
                         errMsg = "Error processing IDR";
-                        log.info("Processing IDR result");
+                        logStep(verbose, "Processing IDR result");
 
                         if (sondaRequest.getState() != -4 && "1".equals(result.getState()) && sondaRequest.getTriggerName() != null) {
-                            log.info("State is 1 and triggerName is not null");
+                            logStep(verbose, "State is 1 and triggerName is not null");
 
-                            Boolean existsSRI = sondaResultRepository.existsByRequestId(sondaRequest);
+                            Boolean existsSRI = context.existsResults();
                             Boolean isImsi = programmingService.getProgrammingById(sondaRequest.getTriggerName()).getType().equals("IMSI");
 
                             if (sondaRequest.getTriggerName() != null && !existsSRI && isImsi) {
-                                log.info("Retrying SRIReq due to IMSI");
+                                logStep(verbose, "Retrying SRIReq due to IMSI");
 
                                 // Delete PSIReq / IDRReq
                                 sondaRequestRepository.deleteById(sondaRequest.getId());
+                                context.markResultsDirty();
 
                                 // Retry SRIReq
                                 writeSriRequest(sondaRequest, result);
+                                outcome = Outcome.RETRY;
+                                countRetry(RetryKind.SRI);
+                                branch = RetryKind.SRI;
                             } else if ("1".equals(result.getState()) && !isImsi) {
                                 sondaRequest.setState(-4);
 
                                 if (!sondaRequest.getResults().isEmpty()) {
-                                    log.info("Attempting retry with SS7");
+                                    logStep(verbose, "Attempting retry with SS7");
 
                                     SondaResult resultAux = sondaRequest.getResults().get(0);
                                     // Retry with another technology if possible
                                     if (restrictionsService.isRestricted(resultAux.getMnc(), sondaRequest.getResults().get(0).getMcc(), "SS7")) {
                                         sondaRequest.setState(-2);
                                     } else {
-                                        log.info("Retrying with SS7");
+                                        logStep(verbose, "Retrying with SS7");
                                         sondaRequest.setType(SondaRequestEnum.PSI.getIdentifier());
                                         writePsiRequest(result.getRequestId().getId(), resultAux, transactionId);
+                                        outcome = Outcome.RETRY;
+                                        countRetry(RetryKind.PSI);
+                                        branch = RetryKind.PSI;
                                     }
                                 } else {
                                     sondaRequest.setState(-2);
@@ -432,7 +477,7 @@
                                 sondaRequest.setState(-2);
                             }
                         } else if ("0".equals(result.getState())) {
-                            log.info("State is 0, processing IDR result as OK");
+                            logStep(verbose, "State is 0, processing IDR result as OK");
 
                             result = getCellLocation(result);
                             log.debug("{} Operation [{}] -> OK", transactionId, result.getType());
@@ -458,14 +503,12 @@
                                 String imsi = result.getImsi();
                                 String mmeHost = result.getMmeHost();
                                 String mmeRealm = result.getMmeRealm();
-                                MccMnc mccMncAux = operatorService.getMccMncFromImsi(imsi);
 
                                 if (imsi != null && mmeHost != null) {
-                                    ImsiNodo imsiNodo = new ImsiNodo(imsi, mmeHost, mmeRealm, mccMncAux.getMcc(), mccMncAux.getMnc(), "MME", LocalDateTime.now());
-                                    imsiNodoService.insertImsiNodo(imsiNodo);
+                                    insertImsiNodoIfChanged(imsi, mmeHost, mmeRealm, "MME");
                                 }
                             } catch (Exception e) {
-                                log.info("Failed to update IMSI / NODO relation");
+                                log.warn("Failed to update IMSI / NODO relation for IMSI {}: {}", result.getImsi(), e.toString());
                             }
 
                             ServiceParameters parameters = new ServiceParameters();
@@ -474,11 +517,11 @@
                             parameters.getParamsMap().put("priority", 1);
                             parameters.getParamsMap().put(ControllerConstants.MCC_MNC, mccMnc);
                         } else if (sondaRequest.getFallback()) {
-                            log.info("Fallback condition met");
+                            logStep(verbose, "Fallback condition met");
                             boolean isSri = false;
                             if(sondaRequest.getType().equals(SondaRequestEnum.SRIFSM.getIdentifier())){
-                                if(!sondaResultRepository.findByRequestId(sondaRequest).isEmpty()){
-                                    switch (sondaResultRepository.findByRequestId(sondaRequest).get(0).getType()) {
+                                if(!context.getStoredResults().isEmpty()){
+                                    switch (context.getStoredResults().get(0).getType()) {
                                         case SRIFSM:
                                             isSri = true;
                                             break;
@@ -488,29 +531,33 @@
                             String number = "";
                             sondaRequest.setFallback(false);
                             if(isSri){
-                                number = sondaResultRepository.findByRequestId(sondaRequest).get(0).getImsi();
+                                number = context.getStoredResults().get(0).getImsi();
                             }else{
                                 sondaRequest.setState(-2);
                                 number = sondaRequest.getNumber();
                             }
 
-                            MccMnc mccMncAux = operatorService.getMccMncFromImsi(number);
+                            // Sin resultado SRI el número de la petición puede ser un MSISDN: no se usa la caché por prefijo
+                            MccMnc mccMncAux = getCachedMccMncFromImsi(number);
 
                             if (restrictionsService.isRestricted(mccMncAux.getMnc(), mccMncAux.getMcc(), "SS7")) {
                                 sondaRequest.setState(-2);
                             } else {
                                 isReintento = true;
-                                log.info("[FALLBACK] Retrying with SS7");
+                                logStep(verbose, "[FALLBACK] Retrying with SS7");
                                 retraying = true;
-                                RequestFileWriterService requestFileWriterService = new RequestFileWriterService(appConfigService, sondaRequestRepository, mmeService, mscService, hssService, imsiNodoService, sondaResultJPARepository, operatorService, restrictionsService, sondaRequestJPARepository, reqNodoService);
+                                RequestFileWriterService requestFileWriterService = newRequestFileWriterService();
 
                                 try {
-                                    Boolean priorityInConfig = "0".equals(appConfigService.getConfigurationMap().get("allowIgnoreBlackOrWhiteList").getValor());
+                                    Boolean priorityInConfig = configurationSnapshot.get().isPriorityInConfig();
                                     requestFileWriterService.writePSIReqFallback(transactionId, number, sondaRequest.getName(), sondaRequest.getPriority(), priorityInConfig, "0", 0, sondaRequest.getUser(), sondaRequest.getMotivo(), sondaRequest.getComentarios());
+                                    outcome = Outcome.FALLBACK;
+                                    countRetry(RetryKind.FALLBACK_PSI);
+                                    branch = RetryKind.FALLBACK_PSI;
 
                                     // Update bulk query
-                                    if (masivasService.getBulkQueryByReqId(sondaRequest.getId()) != null) {
-                                        BulkQuery query = masivasService.getBulkQueryByReqId(sondaRequest.getId());
+                                    BulkQuery query = context.getBulkQuery();
+                                    if (query != null) {
                                         query.setLastupdated(LocalDateTime.now());
                                         query.setType("PSI");
                                         query.setReqTransactionId(transactionId);
@@ -518,9 +565,8 @@
                                         masivasService.insertOrUpdateProgramming(query);
                                     }
                                 } catch (IOException | JAXBException | CryptoException e) {
-                                    log.error("Error while writing the PSI fallback request to IMSI {}", result.getImsi(), e.getCause());
+                                    log.error("Error while writing the PSI fallback request to IMSI {}", result.getImsi(), e);
                                     isReintento = false;
-                                    e.printStackTrace();
                                 }
                             }
                         } else {
@@ -530,25 +576,23 @@
                     //ULR
                     else if (ULR.equals(result.getType())) {
                         result.setFile(file.getName());
-                        // Save to Database
-                        try {
-                            log.debug("{} Saving to data base", transactionId);
-                            sondaResultJPARepository.saveAndFlush(result);
-                        } catch (JpaSystemException je) {
-                            je.printStackTrace();
-                        } catch (Exception e) {
-                            log.error(e.getMessage());
-                        }
+                        // Save to Database: si falla no se archiva el fichero, para no perder el resultado
+                        errMsg = "Error saving ULR result";
+                        stageTimer.next(ProcessingStage.PERSIST);
+                        log.debug("{} Saving to data base", transactionId);
+                        sondaResultJPARepository.saveAndFlush(result);
                     } else {
                         sondaRequest.setState(-3);
                     }
 
 
+                    stageTimer.next(ProcessingStage.PERSIST);
+
                     if (!(("PSI".equals(result.getType()) ||
                             "ATI".equals(result.getType())) &&
                             "1".equals(result.getState())
                             && sondaRequest.getTriggerName() != null
-                            && !sondaResultRepository.existsByRequestId(sondaRequest))) {
+                            && !context.existsResults())) {
 
                         processAndSaveRequestResult(sondaRequest,result, sondaRequestJPARepository,
                                 sondaResultJPARepository, file, isReintento, tecnologia,
@@ -562,20 +606,659 @@
                     throw new Exception(result.getDetail());
                 }
 
-                // Move the actual file to target directory
+                // Move the actual file to target directory (only once the result has been persisted)
+                stageTimer.next(ProcessingStage.ARCHIVE);
+                errMsg = "Error moving file to target directory";
                 Files.move(file.toPath(), targetPath.resolve(file.getName() + dateCodeName), StandardCopyOption.REPLACE_EXISTING);
 
                 // Llamar a un comando definido
                 doCommand(file, targetPath, dateCodeName);
+
+                if (outcome == Outcome.ERROR) {
+                    outcome = Outcome.OK;
+                }
             } else {
                 errMsg = GET_RESPONSE_TYPE_ERROR;
                 logErrAndException(GET_RESPONSE_TYPE_ERROR, GET_RESPONSE_TYPE_ERROR_2, null, true);
             }
 
         } catch (Exception e) {
+            // El tiempo de la etapa que ha fallado se cierra antes de gestionar el error
+            stageTimer.stop();
+            outcome = Outcome.ERROR;
             log.info("Error in step: " + errMsg);
             logErrAndException(errMsg, errMsg, e, true);
+        } finally {
+            stageTimer.stop();
+            recordStageMetrics(metricsType, outcome, stageTimer);
+            traceFile(file, traceTrId, metricsType, outcome, branch, outcome == Outcome.ERROR ? errMsg : null, stageTimer);
+        }
+
+
+    }
+
+    private static final String STATUS_VALUE_TAG = "<status value=\"";
+    private static final String STATUS_DESCRIPTION_ATTR = "\" description";
+
+    // Devuelve el valor de <status value="..."> sin partir el contenido completo, o null si no existe la etiqueta
+    private static String extractStatusValue(String content) {
+        int start = content.indexOf(STATUS_VALUE_TAG);
+        if (start < 0) {
+            return null;
+        }
+        start += STATUS_VALUE_TAG.length();
+        int end = content.indexOf(STATUS_DESCRIPTION_ATTR, start);
+        return end < 0 ? content.substring(start) : content.substring(start, end);
+    }
+
+    // -- Caché de operadoras -- //
+    // Caché local del procesamiento de respuestas delante de operatorService; el resto de servicios siguen
+    // consultando OperatorService directamente. Los datos MCC/MNC cambian como mucho una vez al día.
+    private static final long OPERATOR_CACHE_TTL_MS = 15 * 60 * 1000L;
+    private static final int OPERATOR_CACHE_MAX_SIZE = 20000;
+    // MCC (3) + MNC (2 o 3)
+    private static final int IMSI_MCC_MNC_PREFIX_LENGTH = 6;
+
+    private final TtlSnapshot<OperatorCache> operatorCache = new TtlSnapshot<>(OPERATOR_CACHE_TTL_MS, OperatorCache::new);
+    private final LongAdder operatorCacheHits = new LongAdder();
+    private final LongAdder operatorCacheMisses = new LongAdder();
+
+    private static final class OperatorCache {
+        private final Map<String, MccMnc> mccMncByPrefix = new ConcurrentHashMap<>();
+        private final Map<String, List<Operator>> operatorsByMccMnc = new ConcurrentHashMap<>();
+    }
+
+    // Vale para IMSI y MSISDN: el resultado solo se guarda por prefijo cuando el MCC/MNC devuelto es
+    // precisamente el comienzo del número, es decir, cuando el prefijo lo determina por sí solo
+    private MccMnc getCachedMccMncFromImsi(String number) {
+        if (number == null || number.length() < IMSI_MCC_MNC_PREFIX_LENGTH) {
+            return operatorService.getMccMncFromImsi(number);
+        }
+        Map<String, MccMnc> cache = operatorCache.get().mccMncByPrefix;
+        String prefix = number.substring(0, IMSI_MCC_MNC_PREFIX_LENGTH);
+        MccMnc mccMnc = cache.get(prefix);
+        if (mccMnc != null) {
+            operatorCacheHits.increment();
+            return mccMnc;
+        }
+        operatorCacheMisses.increment();
+        mccMnc = operatorService.getMccMncFromImsi(number);
+        if (mccMnc != null && mccMnc.getMcc() != null && mccMnc.getMnc() != null
+                && prefix.startsWith(mccMnc.getMcc() + mccMnc.getMnc())
+                && cache.size() < OPERATOR_CACHE_MAX_SIZE) {
+            cache.put(prefix, mccMnc);
+        }
+        return mccMnc;
+    }
+
+    private List<Operator> getCachedOperatorByMccMnc(String mcc, String mnc) {
+        Map<String, List<Operator>> cache = operatorCache.get().operatorsByMccMnc;
+        String key = mcc + "-" + mnc;
+        List<Operator> operators = cache.get(key);
+        if (operators != null) {
+            operatorCacheHits.increment();
+            return operators;
+        }
+        operatorCacheMisses.increment();
+        operators = operatorService.getOperatorByMcc_Mnc(mcc, mnc);
+        if (operators != null && cache.size() < OPERATOR_CACHE_MAX_SIZE) {
+            cache.put(key, operators);
+        }
+        return operators;
+    }
+
+    // Fuerza la recarga de la caché de operadoras (p.ej. tras actualizar la tabla de operadores)
+    public void invalidateOperatorCache() {
+        operatorCache.refresh();
+    }
+
+    public long getOperatorCacheHits() {
+        return operatorCacheHits.sum();
+    }
+
+    public long getOperatorCacheMisses() {
+        return operatorCacheMisses.sum();
+    }
+
+    // -- Caché de GT -> País -- //
+    // Los GT de MSC/VLR son un conjunto reducido que se repite en cada resultado; se cachean por GT exacto.
+    // Solo para GT de nodos: los números de abonado (MSISDN) no deben pasar por esta caché.
+    private static final long GT_CACHE_TTL_MS = 15 * 60 * 1000L;
+    private static final int GT_CACHE_MAX_SIZE = 50000;
+
+    private final TtlSnapshot<GtCache> gtCache = new TtlSnapshot<>(GT_CACHE_TTL_MS, GtCache::new);
+
+    private static final class GtCache {
+        private final Map<String, Country> countryByGt = new ConcurrentHashMap<>();
+        private final Map<String, String> internationalCodeByGt = new ConcurrentHashMap<>();
+    }
+
+    private Country getCachedCountry(String gt) {
+        if (gt == null) {
+            return getCountry(gt);
+        }
+        Map<String, Country> cache = gtCache.get().countryByGt;
+        Country country = cache.get(gt);
+        if (country == null) {
+            country = getCountry(gt);
+            if (country != null && cache.size() < GT_CACHE_MAX_SIZE) {
+                cache.put(gt, country);
+            }
+        }
+        return country;
+    }
+
+    private String getCachedInternationalCode(String gt) {
+        if (gt == null) {
+            return getInternationalCode(gt);
+        }
+        Map<String, String> cache = gtCache.get().internationalCodeByGt;
+        String code = cache.get(gt);
+        if (code == null) {
+            code = getInternationalCode(gt);
+            if (code != null && cache.size() < GT_CACHE_MAX_SIZE) {
+                cache.put(gt, code);
+            }
+        }
+        return code;
+    }
+
+    // Fuerza la recarga de la caché de GT (p.ej. tras actualizar la tabla de países)
+    public void invalidateGtCache() {
+        gtCache.refresh();
+    }
+
+    // Resolución en bloque de países para un lote de GT; los GT sin país asociado no aparecen en el mapa
+    public Map<String, Country> getCountries(Collection<String> gts) {
+        Map<String, Country> countries = new HashMap<>();
+        for (String gt : gts) {
+            if (gt == null || countries.containsKey(gt)) {
+                continue;
+            }
+            try {
+                Country country = getCachedCountry(gt);
+                if (country != null) {
+                    countries.put(gt, country);
+                }
+            } catch (Exception e) {
+                log.error("País no encontrado para GT: {}", gt);
+            }
+        }
+        return countries;
+    }
+
+    // Estado auxiliar de un fichero de respuesta: memoriza las consultas que varias ramas repiten
+    // sobre la misma petición y las invalida cuando el propio procesamiento modifica los datos
+    private class FileProcessingContext {
+        private final SondaRequest sondaRequest;
+        private Boolean existsResults;
+        private List<SondaResult> storedResults;
+        private BulkQuery bulkQuery;
+        private boolean bulkQueryLoaded;
+
+        private FileProcessingContext(SondaRequest sondaRequest) {
+            this.sondaRequest = sondaRequest;
+        }
+
+        private boolean existsResults() {
+            if (existsResults == null) {
+                existsResults = sondaResultRepository.existsByRequestId(sondaRequest);
+            }
+            return existsResults;
+        }
+
+        private List<SondaResult> getStoredResults() {
+            if (storedResults == null) {
+                storedResults = sondaResultRepository.findByRequestId(sondaRequest);
+            }
+            return storedResults;
+        }
+
+        private BulkQuery getBulkQuery() {
+            if (!bulkQueryLoaded) {
+                bulkQuery = masivasService.getBulkQueryByReqId(sondaRequest.getId());
+                bulkQueryLoaded = true;
+            }
+            return bulkQuery;
+        }
+
+        // Tras borrar la petición se vuelve a consultar la BD en el siguiente acceso
+        private void markResultsDirty() {
+            existsResults = null;
+            storedResults = null;
+        }
+    }
+
+    // -- Relación IMSI_NODO -- //
+    // Las sondas programadas repiten constantemente el mismo nodo para un IMSI. Se guarda el último nodo
+    // escrito por (IMSI, tipo de nodo) y solo se omite la escritura si el nodo no ha cambiado y sigue
+    // dentro de la ventana; un cambio A -> B -> A escribe siempre el nodo actual.
+    // LRU acotado por orden de acceso: al superar el máximo se descarta en O(1) la entrada usada hace más
+    // tiempo. Se accede siempre bajo el monitor del propio mapa, sin retenerlo durante el insert.
+    private static final long IMSI_NODO_DEDUP_WINDOW_MS = 10 * 60 * 1000L;
+    private static final int IMSI_NODO_DEDUP_MAX_SIZE = 100000;
+
+    private final Map<String, LastImsiNodo> imsiNodoLastWrite = new LinkedHashMap<String, LastImsiNodo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LastImsiNodo> eldest) {
+            return size() > IMSI_NODO_DEDUP_MAX_SIZE;
+        }
+    };
+    private final LongAdder imsiNodoWritten = new LongAdder();
+    private final LongAdder imsiNodoSuppressed = new LongAdder();
+
+    private static final class LastImsiNodo {
+        private final String node;
+        private final String realm;
+        private final long writtenAt;
+
+        private LastImsiNodo(String node, String realm, long writtenAt) {
+            this.node = node;
+            this.realm = realm;
+            this.writtenAt = writtenAt;
+        }
+
+        private boolean isSame(String node, String realm, long now) {
+            return now - writtenAt < IMSI_NODO_DEDUP_WINDOW_MS && this.node.equals(node) && Objects.equals(this.realm, realm);
         }
+    }
+
+    private void insertImsiNodoIfChanged(String imsi, String node, String realm, String nodeType) {
+        long now = System.currentTimeMillis();
+        String key = imsi + "|" + nodeType;
+        LastImsiNodo last;
+        synchronized (imsiNodoLastWrite) {
+            last = imsiNodoLastWrite.get(key);
+        }
+        if (last != null && last.isSame(node, realm, now)) {
+            imsiNodoSuppressed.increment();
+            return;
+        }
+
+        MccMnc mccMnc = getCachedMccMncFromImsi(imsi);
+        ImsiNodo imsiNodo = new ImsiNodo(imsi, node, realm, mccMnc.getMcc(), mccMnc.getMnc(), nodeType, LocalDateTime.now());
+        imsiNodoService.insertImsiNodo(imsiNodo);
+        imsiNodoWritten.increment();
+
+        synchronized (imsiNodoLastWrite) {
+            imsiNodoLastWrite.put(key, new LastImsiNodo(node, realm, now));
+        }
+    }
+
+    public long getImsiNodoWritten() {
+        return imsiNodoWritten.sum();
+    }
+
+    public long getImsiNodoSuppressed() {
+        return imsiNodoSuppressed.sum();
+    }
+
+    // -- Métricas del procesamiento de respuestas -- //
+    // Contadores acumulativos sin bloqueo (LongAdder), pensados para exportarse desde un endpoint de métricas.
+    // Las series están preasignadas por etapa x tipo x resultado: registrar un fichero no crea Strings ni mapas.
+    private enum ProcessingStage { DECRYPT, UNMARSHAL, LOOKUP, RULES, PROCESS, PERSIST, ARCHIVE }
 
+    private enum Outcome { OK, RETRY, FALLBACK, ERROR }
 
+    private enum MetricsResponseType { SRIFSM, PSI, ATI, IDR, ULR, OTHER }
+
+    private static final ProcessingStage[] PROCESSING_STAGES = ProcessingStage.values();
+    private static final MetricsResponseType[] METRICS_RESPONSE_TYPES = MetricsResponseType.values();
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private static final String UNKNOWN_RESPONSE_TYPE = "UNKNOWN";
+
+    // Reintentos lanzados y fallbacks completados; también es la rama que se anota en la traza
+    private enum RetryKind { SRI, PSI, IDA, FALLBACK_IDR, FALLBACK_PSI }
+
+    private static final RetryKind[] RETRY_KINDS = RetryKind.values();
+
+    // Límites superiores (ms) de los buckets del histograma; el último bucket recoge el resto
+    private static final long[] STAGE_HISTOGRAM_BOUNDS_MS = {1, 5, 10, 50, 100, 500, 1000};
+
+    private final StageStats[][][] stageMetrics = new StageStats[PROCESSING_STAGES.length][METRICS_RESPONSE_TYPES.length][OUTCOMES.length];
+    private final LongAdder[][] processedFiles = new LongAdder[METRICS_RESPONSE_TYPES.length][OUTCOMES.length];
+    private final LongAdder[] retryCounters = new LongAdder[RETRY_KINDS.length];
+    private final LongAdder ruleEvaluationErrors = new LongAdder();
+
+    {
+        for (int type = 0; type < METRICS_RESPONSE_TYPES.length; type++) {
+            for (int outcome = 0; outcome < OUTCOMES.length; outcome++) {
+                processedFiles[type][outcome] = new LongAdder();
+                for (int stage = 0; stage < PROCESSING_STAGES.length; stage++) {
+                    stageMetrics[stage][type][outcome] = new StageStats();
+                }
+            }
+        }
+        for (int kind = 0; kind < RETRY_KINDS.length; kind++) {
+            retryCounters[kind] = new LongAdder();
+        }
+    }
+
+    public static final class StageStats {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+        private final LongAdder[] histogram = new LongAdder[STAGE_HISTOGRAM_BOUNDS_MS.length + 1];
+
+        private StageStats() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        private void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            long millis = nanos / 1_000_000L;
+            int bucket = 0;
+            while (bucket < STAGE_HISTOGRAM_BOUNDS_MS.length && millis >= STAGE_HISTOGRAM_BOUNDS_MS[bucket]) {
+                bucket++;
+            }
+            histogram[bucket].increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long[] getHistogram() {
+            long[] buckets = new long[histogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                buckets[i] = histogram[i].sum();
+            }
+            return buckets;
+        }
+    }
+
+    // Cronómetro de un fichero: acumula el tiempo de la etapa en curso al pasar a la siguiente o al
+    // detenerse, de modo que la etapa que falla también queda medida
+    private static final class StageTimer {
+        private final long[] nanos = new long[PROCESSING_STAGES.length];
+        private int enteredStages;
+        private ProcessingStage current;
+        private long start;
+
+        private StageTimer(ProcessingStage first) {
+            current = first;
+            enteredStages = 1 << first.ordinal();
+            start = System.nanoTime();
+        }
+
+        private void next(ProcessingStage stage) {
+            long now = System.nanoTime();
+            if (current != null) {
+                nanos[current.ordinal()] += now - start;
+            }
+            current = stage;
+            enteredStages |= 1 << stage.ordinal();
+            start = now;
+        }
+
+        // Llamadas posteriores no tienen efecto
+        private void stop() {
+            if (current != null) {
+                nanos[current.ordinal()] += System.nanoTime() - start;
+                current = null;
+            }
+        }
+
+        private boolean wasEntered(ProcessingStage stage) {
+            return (enteredStages & (1 << stage.ordinal())) != 0;
+        }
+
+        private long getNanos(ProcessingStage stage) {
+            return nanos[stage.ordinal()];
+        }
+    }
+
+    private static MetricsResponseType metricsResponseType(String type) {
+        if (type == null) {
+            return MetricsResponseType.OTHER;
+        }
+        switch (type) {
+            case SRIFSM:
+                return MetricsResponseType.SRIFSM;
+            case PSI:
+                return MetricsResponseType.PSI;
+            case ATI:
+                return MetricsResponseType.ATI;
+            case IDR:
+                return MetricsResponseType.IDR;
+            case ULR:
+                return MetricsResponseType.ULR;
+            default:
+                return MetricsResponseType.OTHER;
+        }
+    }
+
+    private void recordStageMetrics(String type, Outcome outcome, StageTimer timer) {
+        int typeIndex = metricsResponseType(type).ordinal();
+        int outcomeIndex = outcome.ordinal();
+        processedFiles[typeIndex][outcomeIndex].increment();
+        for (ProcessingStage stage : PROCESSING_STAGES) {
+            if (timer.wasEntered(stage)) {
+                stageMetrics[stage.ordinal()][typeIndex][outcomeIndex].record(timer.getNanos(stage));
+            }
+        }
+    }
+
+    private void countRetry(RetryKind kind) {
+        retryCounters[kind.ordinal()].increment();
+    }
+
+    // Clave: "ETAPA|TIPO|RESULTADO", p.ej. "LOOKUP|PSI|OK"; solo series con datos
+    public Map<String, StageStats> getStageMetrics() {
+        Map<String, StageStats> metrics = new HashMap<>();
+        for (ProcessingStage stage : PROCESSING_STAGES) {
+            for (MetricsResponseType type : METRICS_RESPONSE_TYPES) {
+                for (Outcome outcome : OUTCOMES) {
+                    StageStats stats = stageMetrics[stage.ordinal()][type.ordinal()][outcome.ordinal()];
+                    if (stats.getCount() > 0) {
+                        metrics.put(stage + "|" + type + "|" + outcome, stats);
+                    }
+                }
+            }
+        }
+        return metrics;
+    }
+
+    // Ficheros procesados por "TIPO|RESULTADO", independiente del tiempo de cada etapa
+    public Map<String, Long> getProcessedFileCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (MetricsResponseType type : METRICS_RESPONSE_TYPES) {
+            for (Outcome outcome : OUTCOMES) {
+                long count = processedFiles[type.ordinal()][outcome.ordinal()].sum();
+                if (count > 0) {
+                    counts.put(type + "|" + outcome, count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    public long getRuleEvaluationErrors() {
+        return ruleEvaluationErrors.sum();
+    }
+
+    public Map<String, Long> getRetryCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        for (RetryKind kind : RETRY_KINDS) {
+            long count = retryCounters[kind.ordinal()].sum();
+            if (count > 0) {
+                counts.put(kind.name(), count);
+            }
+        }
+        return counts;
+    }
+
+    // -- Unmarshallers y transformadores -- //
+    // Unmarshaller no es thread-safe: cada hilo reutiliza su propia instancia por tipo de respuesta.
+    // Los transformadores no guardan estado y se comparten entre hilos.
+    private static final String UNMARSHALLER_GENERIC = "generic";
+    private static final String UNMARSHALLER_ULR = "ulr";
+    private static final String UNMARSHALLER_IDR = "idr";
+    private static final String UNMARSHALLER_DEFAULT = "default";
+
+    private static final ITransformer<SondaXmlUlrResponse, SondaResult> ULR_TRANSFORMER = new SondaXmlUlrResponseTransformer();
+    private static final ITransformer<SondaXmlIdrResponse, SondaResult> IDR_TRANSFORMER = new SondaXmlIdrResponseTransformer();
+
+    private final ThreadLocal<Map<String, Unmarshaller>> threadUnmarshallers = ThreadLocal.withInitial(HashMap::new);
+
+    private Unmarshaller getThreadUnmarshaller(String type) throws JAXBException {
+        Map<String, Unmarshaller> unmarshallers = threadUnmarshallers.get();
+        Unmarshaller unmarshaller = unmarshallers.get(type);
+        if (unmarshaller == null) {
+            switch (type) {
+                case UNMARSHALLER_GENERIC:
+                    unmarshaller = getGenericXmlUnmarshaller();
+                    break;
+                case UNMARSHALLER_ULR:
+                    unmarshaller = getResponseXmlUnmarshallerUlr();
+                    break;
+                case UNMARSHALLER_IDR:
+                    unmarshaller = getResponseXmlUnmarshallerIdr();
+                    break;
+                default:
+                    unmarshaller = getResponseXmlUnmarshaller();
+                    break;
+            }
+            unmarshallers.put(type, unmarshaller);
+        }
+        return unmarshaller;
+    }
+
+    // -- Escritor de peticiones para fallback -- //
+    // Una instancia por fallback: RequestFileWriterService no está verificado como libre de estado
+    // y processFile puede ejecutarse en paralelo
+    private RequestFileWriterService newRequestFileWriterService() {
+        return new RequestFileWriterService(appConfigService, sondaRequestRepository, mmeService, mscService, hssService, imsiNodoService, sondaResultJPARepository, operatorService, restrictionsService, sondaRequestJPARepository, reqNodoService);
+    }
+
+    // -- Traza estructurada por fichero -- //
+    // Un único registro por fichero en un logger propio, para poder enviarlo a un appender asíncrono
+    // que descarte bajo presión (AsyncAppender con neverBlock) sin afectar al resto de logs.
+    private static final Logger traceLog = LoggerFactory.getLogger("ResponseFileTrace");
+
+    // 1 de cada N ficheros registra los pasos a INFO (0 = ninguno); el resto solo a DEBUG.
+    // Solo para mensajes de progreso: los fallos se registran siempre con su propio nivel.
+    private volatile int stepLogSampleRate = 100;
+
+    public void setStepLogSampleRate(int stepLogSampleRate) {
+        this.stepLogSampleRate = stepLogSampleRate;
+    }
+
+    private boolean isStepLogSampled() {
+        int rate = stepLogSampleRate;
+        return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+
+    private void logStep(boolean verbose, String format, Object... args) {
+        if (verbose) {
+            log.info(format, args);
+        } else {
+            log.debug(format, args);
+        }
+    }
+
+    private void traceFile(File file, String trId, String type, Outcome outcome, RetryKind branch, String errorStage, StageTimer stageTimer) {
+        if (!traceLog.isInfoEnabled()) {
+            return;
+        }
+        StringBuilder stages = new StringBuilder();
+        for (ProcessingStage stage : PROCESSING_STAGES) {
+            if (stageTimer.wasEntered(stage)) {
+                if (stages.length() > 0) {
+                    stages.append(',');
+                }
+                stages.append(stage).append('=').append(stageTimer.getNanos(stage) / 1_000).append("us");
+            }
+        }
+        traceLog.info("file={} trId={} type={} outcome={} branch={} errorStage=\"{}\" stages=[{}]",
+                file.getName(), trId, type, outcome, branch, escapeTraceValue(errorStage), stages);
+    }
+
+    // errorStage puede traer el detalle del resultado: se escapan comillas y saltos de línea para que
+    // el registro siga siendo una sola línea analizable
+    private static String escapeTraceValue(String value) {
+        if (value == null) {
+            return null;
+        }
+        StringBuilder escaped = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            switch (c) {
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '"':
+                    replacement = "\\\"";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                case '\r':
+                    replacement = "\\r";
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(value.length() + 16).append(value, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped == null ? value : escaped.toString();
+    }
+
+    // -- Configuración -- //
+    // Instantánea inmutable y tipada de la configuración usada en el procesamiento: se lee con una sola
+    // lectura volátil y se reconstruye por TTL o cuando se notifica un cambio (refreshConfiguration)
+    private static final long CONFIGURATION_TTL_MS = 30 * 1000L;
+    private static final String CONFIG_ALLOW_IGNORE_BLACK_OR_WHITE_LIST = "allowIgnoreBlackOrWhiteList";
+
+    private final TtlSnapshot<ConfigurationSnapshot> configurationSnapshot = new TtlSnapshot<>(CONFIGURATION_TTL_MS, this::loadConfigurationSnapshot);
+
+    private static final class ConfigurationSnapshot {
+        // allowIgnoreBlackOrWhiteList = "0" -> las peticiones de fallback respetan la prioridad configurada
+        private final boolean priorityInConfig;
+
+        private ConfigurationSnapshot(boolean priorityInConfig) {
+            this.priorityInConfig = priorityInConfig;
+        }
+
+        private boolean isPriorityInConfig() {
+            return priorityInConfig;
+        }
+    }
+
+    // Para invocarse al recibir una notificación de cambio de configuración
+    public void refreshConfiguration() {
+        configurationSnapshot.refresh();
+    }
+
+    private ConfigurationSnapshot loadConfigurationSnapshot() {
+        String allowIgnoreBlackOrWhiteList = Optional.ofNullable(appConfigService.getConfigurationMap().get(CONFIG_ALLOW_IGNORE_BLACK_OR_WHITE_LIST))
+                .map(config -> config.getValor())
+                .orElse(null);
+        if (allowIgnoreBlackOrWhiteList == null) {
+            log.warn("Parámetro de configuración '{}' no encontrado", CONFIG_ALLOW_IGNORE_BLACK_OR_WHITE_LIST);
+        }
+        return new ConfigurationSnapshot("0".equals(allowIgnoreBlackOrWhiteList));
     }
@@ -0,0 +1,62 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+// Valor de solo lectura que se recarga cuando caduca. La instantánea vigente se publica con una
+// escritura volátil: los lectores en curso siguen usando la anterior hasta terminar.
+// Solo un hilo recarga a la vez; mientras tanto el resto sigue sirviendo el valor caducado y
+// únicamente espera quien aún no tiene ninguno (primera carga o tras refresh()).
+public final class TtlSnapshot<T> {
+
+    private final long ttlNanos;
+    private final Supplier<T> loader;
+    private final ReentrantLock reloadLock = new ReentrantLock();
+    private volatile Snapshot<T> current;
+
+    public TtlSnapshot(long ttlMillis, Supplier<T> loader) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.loader = loader;
+    }
+
+    public T get() {
+        Snapshot<T> snapshot = current;
+        if (snapshot != null && !snapshot.isExpired(ttlNanos)) {
+            return snapshot.value;
+        }
+        if (snapshot == null) {
+            reloadLock.lock();
+        } else if (!reloadLock.tryLock()) {
+            return snapshot.value;
+        }
+        try {
+            snapshot = current;
+            if (snapshot == null || snapshot.isExpired(ttlNanos)) {
+                snapshot = new Snapshot<>(loader.get(), System.nanoTime());
+                current = snapshot;
+            }
+            return snapshot.value;
+        } finally {
+            reloadLock.unlock();
+        }
+    }
+
+    // Descarta la instantánea vigente: la siguiente lectura vuelve a cargar el valor
+    public void refresh() {
+        current = null;
+    }
+
+    private static final class Snapshot<T> {
+        private final T value;
+        private final long loadedAt;
+
+        private Snapshot(T value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+
+        // nanoTime() es monótono: un salto atrás del reloj del sistema no congela la caché
+        private boolean isExpired(long ttlNanos) {
+            return System.nanoTime() - loadedAt > ttlNanos;
+        }
+    }
+}